@@ -0,0 +1,24 @@
+package com.ctlok.web.session;
+
+/**
+ * What {@link StatelessSession#setAttribute(String, Object)} does when the 
+ * session cookie would grow over the configured max size.
+ */
+public enum OverflowPolicy {
+    
+    /**
+     * Throw an {@link IllegalStateException} and keep the session unchanged.
+     */
+    EXCEPTION,
+    
+    /**
+     * Silently drop the attribute and keep the session unchanged.
+     */
+    IGNORE,
+    
+    /**
+     * Store the attribute anyway. The browser may drop the cookie.
+     */
+    ALLOW
+
+}
@@ -0,0 +1,31 @@
+package com.ctlok.web.session;
+
+/**
+ * Result of reading the session cookie of a request.
+ */
+public enum SessionCookieStatus {
+    
+    VALID,
+    
+    /**
+     * Request has no session cookie.
+     */
+    NOT_FOUND,
+    
+    /**
+     * Wrong length, version or characters. Rejected before checksum.
+     */
+    MALFORMED,
+    
+    /**
+     * Checksum does not match, cookie is forged or modified by client.
+     */
+    BAD_CHECKSUM,
+    
+    /**
+     * Checksum matches but the payload cannot be decrypted or parsed, 
+     * e.g. secret key was changed.
+     */
+    UNREADABLE
+
+}
@@ -1,6 +1,7 @@
 package com.ctlok.web.session;
 
 import java.math.BigInteger;
+import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
 import java.util.Collections;
 import java.util.Enumeration;
@@ -14,63 +15,69 @@ import javax.servlet.http.HttpSession;
 import javax.servlet.http.HttpSessionContext;
 
 import com.ctlok.web.session.crypto.CryptoUtils;
+import com.ctlok.web.session.crypto.LengthAwareEncryptor;
 import com.google.gson.Gson;
 
 public class StatelessSession implements HttpSession {
 
-    private static final String CHECKSUM_KEY = "__s";
     private static final String ID_KEY = "__id";
     private static final String CREATION_TIME_KEY = "__ct";
     
+    /**
+     * Cookie value layout: version char, HMAC-SHA1 hex of payload, payload. 
+     * Payload is the JSON, encrypted if a secret key is configured.
+     */
+    private static final char COOKIE_VERSION = '1';
+    private static final int CHECKSUM_LENGTH = 40;
+    private static final int HEADER_LENGTH = 1 + CHECKSUM_LENGTH;
+    
+    /**
+     * Browsers are only required to keep cookies up to 4096 bytes, anything 
+     * longer is rejected on read whatever max size and overflow policy are.
+     */
+    private static final int MAX_COOKIE_VALUE_LENGTH = 4096;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    
     private final Map<String, String> attributes = new TreeMap<String, String>();
     private final Gson gson = new Gson();
     
     private final StatelessSessionConfig config;
     private boolean newSession;
+    private SessionCookieStatus cookieStatus;
     
     private String sessionId;
     private long creationTime;
     
+    /**
+     * Sum of {@link #entryLength(String, String)} of all attributes, 
+     * kept up to date by set / remove so size check needs no encoding.
+     */
+    private int attributesLength;
+    
     public StatelessSession(final StatelessSessionConfig config){
         
         this.config = config;
         
-        try{
+        final Cookie sessionCookie = findSessionCookie();
+        if (sessionCookie == null){
+            this.cookieStatus = SessionCookieStatus.NOT_FOUND;
+        }else{
+            this.cookieStatus = this.readSessionCookie(sessionCookie.getValue());
             
-            final Cookie sessionCookie = findSessionCookie();
-            if (sessionCookie == null){
-                this.initNewSession();
-            }else{
-                String cookieValue = sessionCookie.getValue();
-                
-                if (this.config.getSecretKey() != null){
-                    
-                    cookieValue = this.config.getEncryptor().decrypt(
-                            this.config.getSecretKey(), cookieValue);
-                        
-                }
-
-                if (this.isValidSessionCookieValue(cookieValue)){
-                    this.attributes.putAll(this.jsonToMap(cookieValue));
-                    this.sessionId = this.attributes.get(ID_KEY);
-                    this.creationTime = Long.valueOf(this.attributes.get(CREATION_TIME_KEY));
-                    
-                    this.attributes.remove(CHECKSUM_KEY);
-                    this.attributes.remove(ID_KEY);
-                    this.attributes.remove(CREATION_TIME_KEY);
-                }else{
-                    this.initNewSession();
-                }
+            if (this.cookieStatus != SessionCookieStatus.VALID){
+                this.config.getMetrics().recordRejectedCookie(this.cookieStatus);
+                this.expireSessionCookie();
             }
+        }
         
-        } catch (Exception e){
-            e.printStackTrace();
+        if (this.cookieStatus != SessionCookieStatus.VALID){
             this.initNewSession();
         }
     }
     
     private void initNewSession(){
         this.attributes.clear();
+        this.attributesLength = 0;
         this.sessionId = this.generateSessionId();
         this.creationTime = System.currentTimeMillis();
         this.newSession = true;
@@ -92,21 +99,100 @@ public class StatelessSession implements HttpSession {
         return sessionCookie;
     }
     
-    protected boolean isValidSessionCookieValue(final String cookieValue){
-        final Map<String, String> map = jsonToMap(cookieValue);
+    /**
+     * Verify and load the session cookie. Structure and HMAC are checked 
+     * before anything is decrypted or parsed, nothing is thrown.
+     */
+    protected SessionCookieStatus readSessionCookie(final String cookieValue){
+        if (!this.isWellFormedCookieValue(cookieValue)){
+            return SessionCookieStatus.MALFORMED;
+        }
         
-        if (map.containsKey(CHECKSUM_KEY) 
-                && map.containsKey(ID_KEY) 
-                && map.containsKey(CREATION_TIME_KEY)){
-            
-            final String checksum = map.get(CHECKSUM_KEY);
-            map.remove(CHECKSUM_KEY);
+        final String checksum = cookieValue.substring(1, HEADER_LENGTH);
+        final String payload = cookieValue.substring(HEADER_LENGTH);
+        
+        if (!this.isEqualChecksum(checksum, this.checksum(payload))){
+            return SessionCookieStatus.BAD_CHECKSUM;
+        }
+        
+        final Map<String, String> map;
+        final long cookieCreationTime;
+        
+        try{
+            final String json = this.config.getSecretKey() == null ? payload : 
+                this.config.getEncryptor().decrypt(this.config.getSecretKey(), payload);
             
-            return checksum.equals(this.mapChecksum(map));
+            map = this.jsonToMap(json);
+            if (map == null || !map.containsKey(ID_KEY) || !map.containsKey(CREATION_TIME_KEY)){
+                return SessionCookieStatus.UNREADABLE;
+            }
             
+            cookieCreationTime = Long.valueOf(map.get(CREATION_TIME_KEY));
+        } catch (final Exception e){
+            return SessionCookieStatus.UNREADABLE;
         }
         
-        return false;
+        this.sessionId = map.remove(ID_KEY);
+        this.creationTime = cookieCreationTime;
+        map.remove(CREATION_TIME_KEY);
+        
+        this.attributes.putAll(map);
+        for (final Map.Entry<String, String> entry: this.attributes.entrySet()){
+            this.attributesLength += this.entryLength(entry.getKey(), entry.getValue());
+        }
+        
+        return SessionCookieStatus.VALID;
+    }
+    
+    protected boolean isWellFormedCookieValue(final String cookieValue){
+        if (cookieValue == null 
+                || cookieValue.length() <= HEADER_LENGTH
+                || cookieValue.length() > MAX_COOKIE_VALUE_LENGTH
+                || cookieValue.charAt(0) != COOKIE_VERSION){
+            return false;
+        }
+        
+        for (int i = 1; i < HEADER_LENGTH; i++){
+            final char c = cookieValue.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))){
+                return false;
+            }
+        }
+        
+        if (this.config.getSecretKey() == null){
+            return cookieValue.charAt(HEADER_LENGTH) == '{' 
+                    && cookieValue.charAt(cookieValue.length() - 1) == '}';
+        }
+        
+        for (int i = HEADER_LENGTH; i < cookieValue.length(); i++){
+            if (!isBase64Char(cookieValue.charAt(i))){
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    private static boolean isBase64Char(final char c){
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') 
+                || c == '+' || c == '/' || c == '=' || c == '-' || c == '_';
+    }
+    
+    /**
+     * Compare without returning early, so timing does not leak 
+     * how much of a forged checksum is correct.
+     */
+    protected boolean isEqualChecksum(final String a, final String b){
+        if (a.length() != b.length()){
+            return false;
+        }
+        
+        int result = 0;
+        for (int i = 0; i < a.length(); i++){
+            result |= a.charAt(i) ^ b.charAt(i);
+        }
+        
+        return result == 0;
     }
     
     protected String mapToJson(final Map<String, String> map){
@@ -118,14 +204,78 @@ public class StatelessSession implements HttpSession {
         return gson.fromJson(json, Map.class);
     }
     
-    protected String mapChecksum(Map<String, String> map){
+    protected String checksum(final String payload){
         try {
-            return CryptoUtils.hmacSha1(this.config.getHmacSHA1Key(), this.mapToJson(map));
+            return CryptoUtils.hmacSha1(this.config.getHmacSHA1Key(), payload);
         } catch (InvalidKeyException e) {
             throw new IllegalStateException(e);
         }
     }
     
+    /**
+     * Length of <code>"key":"value",</code> in the JSON produced by Gson, 
+     * including escape sequences and UTF-8 multi-byte characters.
+     */
+    protected int entryLength(final String key, final String value){
+        return this.jsonStringLength(key) + this.jsonStringLength(value) + 2;
+    }
+    
+    protected int jsonStringLength(final String str){
+        int length = 2;
+        
+        for (int i = 0; i < str.length(); i++){
+            final char c = str.charAt(i);
+            
+            switch (c){
+                case '"': case '\\': case '\t': case '\b': case '\n': case '\r': case '\f':
+                    length += 2;
+                    break;
+                case '<': case '>': case '&': case '=': case '\'': case '\u2028': case '\u2029':
+                    length += 6;
+                    break;
+                default:
+                    if (c < 0x20){
+                        length += 6;
+                    }else if (c < 0x80){
+                        length += 1;
+                    }else if (c < 0x800 
+                            || (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)){
+                        length += 2;
+                    }else{
+                        length += 3;
+                    }
+            }
+        }
+        
+        return length;
+    }
+    
+    /**
+     * Estimated size of the session cookie (name, '=' and value) 
+     * for the given attributes length, or -1 if the encryptor is not 
+     * a {@link LengthAwareEncryptor} and its output length is unknown.
+     */
+    protected int estimateCookieSize(final int attributesLength){
+        final int metaLength = this.entryLength(ID_KEY, this.sessionId) 
+                + this.entryLength(CREATION_TIME_KEY, Long.toString(this.creationTime));
+        
+        // '{' + entries each followed by ',' where the last ',' is '}' 
+        int valueLength = 1 + metaLength + attributesLength;
+        
+        if (this.config.getSecretKey() != null){
+            if (!(this.config.getEncryptor() instanceof LengthAwareEncryptor)){
+                return -1;
+            }
+            valueLength = ((LengthAwareEncryptor) this.config.getEncryptor()).encryptedLength(valueLength);
+        }
+        
+        return this.config.getSessionName().length() + 1 + HEADER_LENGTH + valueLength;
+    }
+    
+    public int getEstimatedCookieSize(){
+        return this.estimateCookieSize(this.attributesLength);
+    }
+    
     protected String generateSessionId(){
         final String uuid = UUID.randomUUID().toString();
         return new BigInteger(uuid.replaceAll("-", ""), 16).toString(32);
@@ -138,22 +288,12 @@ public class StatelessSession implements HttpSession {
             map.put(ID_KEY, sessionId);
             map.put(CREATION_TIME_KEY, Long.toString(creationTime));
             
-            final String checksum = mapChecksum(map);
-            map.put(CHECKSUM_KEY, checksum);
-            
             final String json = mapToJson(map);
-            final String cookieValue = this.config.getSecretKey() == null ? json : 
+            final String payload = this.config.getSecretKey() == null ? json : 
                 this.config.getEncryptor().encrypt(this.config.getSecretKey(), json);
             
-            final Cookie cookie = new Cookie(this.config.getSessionName(), cookieValue);
-            
+            final Cookie cookie = this.newCookie(COOKIE_VERSION + this.checksum(payload) + payload);
             cookie.setMaxAge(this.config.getSessionMaxAge());
-            cookie.setPath(this.config.getPath());
-            cookie.setHttpOnly(this.config.isHttpOnly());
-            
-            if (this.config.getDomain() != null){
-                cookie.setDomain(this.config.getDomain());
-            }
             
             return cookie;
         } catch (final Exception e){
@@ -161,8 +301,96 @@ public class StatelessSession implements HttpSession {
         }
     }
     
+    private Cookie newCookie(final String value){
+        final Cookie cookie = new Cookie(this.config.getSessionName(), value);
+        
+        cookie.setPath(this.config.getPath());
+        cookie.setHttpOnly(this.config.isHttpOnly());
+        
+        if (this.config.getDomain() != null){
+            cookie.setDomain(this.config.getDomain());
+        }
+        
+        return cookie;
+    }
+    
+    /**
+     * Tell the browser to drop a rejected session cookie, so it is not 
+     * sent and checked again on every following request.
+     */
+    protected void expireSessionCookie(){
+        final Cookie cookie = this.newCookie("");
+        cookie.setMaxAge(0);
+        this.config.getResponse().addCookie(cookie);
+    }
+    
     public void flush(){
-        this.config.getResponse().addCookie(this.createCookie());
+        this.writeCookie(true);
+    }
+    
+    /**
+     * Write the session cookie, unless checkSize is set, its actual size 
+     * is over max size and the overflow policy rejects it.
+     * 
+     * @return false if the cookie was not written
+     */
+    protected boolean writeCookie(final boolean checkSize){
+        final Cookie cookie = this.createCookie();
+        final int size = this.cookieSize(cookie);
+        
+        if (checkSize && size > this.config.getMaxSize() && !this.acceptOverflow(
+                "Session cookie size " + size + " over " + this.config.getMaxSize() + " bytes")){
+            return false;
+        }
+        
+        this.config.getMetrics().recordCookieSize(size);
+        this.config.getResponse().addCookie(cookie);
+        return true;
+    }
+    
+    protected int cookieSize(final Cookie cookie){
+        return cookie.getName().length() + 1 + cookie.getValue().getBytes(CHARSET).length;
+    }
+    
+    /**
+     * @return true if the overflow policy allows to write the cookie anyway
+     */
+    private boolean acceptOverflow(final String message){
+        this.config.getMetrics().recordOverflow();
+        
+        if (this.config.getOverflowPolicy() == OverflowPolicy.EXCEPTION){
+            throw new IllegalStateException(message);
+        }
+        
+        return this.config.getOverflowPolicy() == OverflowPolicy.ALLOW;
+    }
+    
+    /**
+     * Set (or remove if value is null) an attribute and write the cookie. 
+     * The change is rolled back if the cookie is not written. A change that 
+     * does not grow the session is always written, even if the session is 
+     * already over max size, so e.g. logout cannot fail.
+     */
+    private void updateAttribute(final String name, final String value, final int newAttributesLength){
+        final boolean checkSize = newAttributesLength > this.attributesLength;
+        final String oldValue = value == null ? 
+                this.attributes.remove(name) : this.attributes.put(name, value);
+        final int oldAttributesLength = this.attributesLength;
+        this.attributesLength = newAttributesLength;
+        
+        boolean written = false;
+        try{
+            written = this.writeCookie(checkSize);
+        }finally{
+            if (!written){
+                if (oldValue == null){
+                    this.attributes.remove(name);
+                }else{
+                    this.attributes.put(name, oldValue);
+                }
+                this.attributesLength = oldAttributesLength;
+            }
+        }
     }
     
     @Override
@@ -223,8 +451,20 @@ public class StatelessSession implements HttpSession {
     @Override
     public void setAttribute(String name, Object value) {
         if (value instanceof String){
-            this.attributes.put(name, value.toString());
-            this.flush();
+            final String oldValue = this.attributes.get(name);
+            final int newAttributesLength = this.attributesLength 
+                    + this.entryLength(name, value.toString())
+                    - (oldValue == null ? 0 : this.entryLength(name, oldValue));
+            
+            if (this.config.getOverflowPolicy() != OverflowPolicy.ALLOW 
+                    && newAttributesLength > this.attributesLength
+                    && this.estimateCookieSize(newAttributesLength) > this.config.getMaxSize()){
+                this.acceptOverflow("Session size over " 
+                        + this.config.getMaxSize() + " bytes, cannot set attribute: " + name);
+                return;
+            }
+            
+            this.updateAttribute(name, value.toString(), newAttributesLength);
         }else{
             throw new IllegalArgumentException("Stateless session only accept String value");
         }
@@ -237,8 +477,9 @@ public class StatelessSession implements HttpSession {
 
     @Override
     public void removeAttribute(String name) {
-        this.attributes.remove(name);
-        this.flush();
+        final String oldValue = this.attributes.get(name);
+        this.updateAttribute(name, null, this.attributesLength 
+                - (oldValue == null ? 0 : this.entryLength(name, oldValue)));
     }
 
     @Override
@@ -253,6 +494,10 @@ public class StatelessSession implements HttpSession {
         this.config.getResponse().addCookie(cookie);
     }
 
+    public SessionCookieStatus getCookieStatus() {
+        return this.cookieStatus;
+    }
+
     @Override
     public boolean isNew() {
         return this.newSession;
@@ -8,6 +8,14 @@ import com.ctlok.web.session.crypto.Encryptor;
 
 public class StatelessSessionConfig {
 
+    public static final int DEFAULT_MAX_SIZE = 4096;
+    
+    /**
+     * Shared by all configs created with the legacy constructor, so counters 
+     * and rejected cookie log throttling are not reset on every request.
+     */
+    private static final StatelessSessionMetrics DEFAULT_METRICS = new StatelessSessionMetrics();
+
     private final ServletContext servletContext;
     private final HttpServletRequest request;
     private final HttpServletResponse response;
@@ -22,11 +30,26 @@ public class StatelessSessionConfig {
     private final String domain;
     private final boolean httpOnly;
 
+    private final int maxSize;
+    private final OverflowPolicy overflowPolicy;
+    private final StatelessSessionMetrics metrics;
+
     public StatelessSessionConfig(ServletContext servletContext,
             HttpServletRequest request, HttpServletResponse response,
             String hmacSHA1Key, String secretKey, Encryptor encryptor,
             String sessionName, int sessionMaxAge, String path, String domain,
             boolean httpOnly) {
+        this(servletContext, request, response, hmacSHA1Key, secretKey, 
+                encryptor, sessionName, sessionMaxAge, path, domain, httpOnly, 
+                DEFAULT_MAX_SIZE, OverflowPolicy.ALLOW, DEFAULT_METRICS);
+    }
+
+    public StatelessSessionConfig(ServletContext servletContext,
+            HttpServletRequest request, HttpServletResponse response,
+            String hmacSHA1Key, String secretKey, Encryptor encryptor,
+            String sessionName, int sessionMaxAge, String path, String domain,
+            boolean httpOnly, int maxSize, OverflowPolicy overflowPolicy,
+            StatelessSessionMetrics metrics) {
         super();
         this.servletContext = servletContext;
         this.request = request;
@@ -39,6 +62,9 @@ public class StatelessSessionConfig {
         this.path = path;
         this.domain = domain;
         this.httpOnly = httpOnly;
+        this.maxSize = maxSize;
+        this.overflowPolicy = overflowPolicy;
+        this.metrics = metrics;
     }
 
     public ServletContext getServletContext() {
@@ -85,4 +111,16 @@ public class StatelessSessionConfig {
         return httpOnly;
     }
 
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public StatelessSessionMetrics getMetrics() {
+        return metrics;
+    }
+
 }
@@ -33,6 +33,8 @@ public class StatelessSessionFilter implements Filter {
     private static final String PARAM_SESSION_PATH = "SESSION_PATH";
     private static final String PARAM_SESSION_DOMAIN = "SESSION_DOMAIN";
     private static final String PARAM_SESSION_HTTP_ONLY = "HTTP_ONLY";
+    private static final String PARAM_SESSION_MAX_SIZE = "SESSION_MAX_SIZE";
+    private static final String PARAM_SESSION_OVERFLOW_POLICY = "SESSION_OVERFLOW_POLICY";
     
     private static final String DEFAULT_ENCRYPTION_IMPL_CLASS = "com.ctlok.web.session.crypto.AesEncryptor";
     
@@ -41,6 +43,8 @@ public class StatelessSessionFilter implements Filter {
     private static final String DEFAULT_SESSION_PATH = "/";
     private static final String DEFAULT_SESSION_DOMAIN = null;
     private static final String DEFAULT_SESSION_HTTP_ONLY = "true";
+    private static final String DEFAULT_SESSION_MAX_SIZE = Integer.toString(StatelessSessionConfig.DEFAULT_MAX_SIZE);
+    private static final String DEFAULT_SESSION_OVERFLOW_POLICY = OverflowPolicy.EXCEPTION.name();
     
     private FilterConfig filterConfig;
     private String hmacSha1Key;
@@ -52,6 +56,10 @@ public class StatelessSessionFilter implements Filter {
     private String sessionPath;
     private String sessionDomain;
     private boolean httpOnly;
+    private int sessionMaxSize;
+    private OverflowPolicy overflowPolicy;
+    
+    private StatelessSessionMetrics metrics;
     
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
@@ -88,6 +96,17 @@ public class StatelessSessionFilter implements Filter {
         this.sessionPath = this.getConfig(filterConfig, PARAM_SESSION_PATH, DEFAULT_SESSION_PATH);
         this.sessionDomain = this.getConfig(filterConfig, PARAM_SESSION_DOMAIN, DEFAULT_SESSION_DOMAIN);
         this.httpOnly = Boolean.valueOf(this.getConfig(filterConfig, PARAM_SESSION_HTTP_ONLY, DEFAULT_SESSION_HTTP_ONLY));
+        this.sessionMaxSize = Integer.valueOf(this.getConfig(filterConfig, PARAM_SESSION_MAX_SIZE, DEFAULT_SESSION_MAX_SIZE));
+        
+        try {
+            this.overflowPolicy = OverflowPolicy.valueOf(
+                    this.getConfig(filterConfig, PARAM_SESSION_OVERFLOW_POLICY, DEFAULT_SESSION_OVERFLOW_POLICY));
+        } catch (final IllegalArgumentException e) {
+            throw new ServletException("Invalid SESSION_OVERFLOW_POLICY", e);
+        }
+        
+        this.metrics = new StatelessSessionMetrics();
+        filterConfig.getServletContext().setAttribute(StatelessSessionMetrics.ATTRIBUTE_NAME, this.metrics);
     }
 
     @Override
@@ -113,7 +132,8 @@ public class StatelessSessionFilter implements Filter {
                             this.secretkey, this.encryptor,
                             this.sessionName, this.sessionMaxAge,
                             this.sessionPath, this.sessionDomain,
-                            this.httpOnly);
+                            this.httpOnly, this.sessionMaxSize,
+                            this.overflowPolicy, this.metrics);
         
     }
 
@@ -0,0 +1,112 @@
+package com.ctlok.web.session;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters shared by all sessions created from the same filter. 
+ * The filter publishes it as a servlet context attribute named 
+ * {@link #ATTRIBUTE_NAME}.
+ */
+public class StatelessSessionMetrics {
+    
+    public static final String ATTRIBUTE_NAME = StatelessSessionMetrics.class.getName();
+    
+    private static final Logger LOGGER = Logger.getLogger(StatelessSessionMetrics.class.getName());
+    private static final long REJECTED_COOKIE_LOG_INTERVAL = 60 * 1000;
+
+    private final AtomicLong cookiesWritten = new AtomicLong();
+    private final AtomicLong totalCookieSize = new AtomicLong();
+    private final AtomicLong largestCookieSize = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+    
+    private final AtomicLong malformedCookies = new AtomicLong();
+    private final AtomicLong badChecksumCookies = new AtomicLong();
+    private final AtomicLong unreadableCookies = new AtomicLong();
+    private final AtomicLong lastRejectedCookieLogTime = new AtomicLong();
+    
+    public void recordCookieSize(final int size){
+        this.cookiesWritten.incrementAndGet();
+        this.totalCookieSize.addAndGet(size);
+        
+        long largest = this.largestCookieSize.get();
+        while (size > largest && !this.largestCookieSize.compareAndSet(largest, size)){
+            largest = this.largestCookieSize.get();
+        }
+    }
+    
+    public void recordOverflow(){
+        this.overflows.incrementAndGet();
+    }
+
+    /**
+     * Count a rejected session cookie. A summary is logged at most once 
+     * per minute, so a flood of bad cookies cannot flood the log.
+     */
+    public void recordRejectedCookie(final SessionCookieStatus status){
+        switch (status){
+            case MALFORMED:
+                this.malformedCookies.incrementAndGet();
+                break;
+            case BAD_CHECKSUM:
+                this.badChecksumCookies.incrementAndGet();
+                break;
+            case UNREADABLE:
+                this.unreadableCookies.incrementAndGet();
+                break;
+            default:
+                return;
+        }
+        
+        final long now = System.currentTimeMillis();
+        final long lastLogTime = this.lastRejectedCookieLogTime.get();
+        
+        if (now - lastLogTime >= REJECTED_COOKIE_LOG_INTERVAL
+                && this.lastRejectedCookieLogTime.compareAndSet(lastLogTime, now)
+                && LOGGER.isLoggable(Level.WARNING)){
+            
+            LOGGER.warning("Rejected session cookies, malformed: " + this.malformedCookies.get()
+                    + ", bad checksum: " + this.badChecksumCookies.get()
+                    + ", unreadable: " + this.unreadableCookies.get());
+        }
+    }
+
+    public long getCookiesWritten() {
+        return cookiesWritten.get();
+    }
+
+    public long getTotalCookieSize() {
+        return totalCookieSize.get();
+    }
+    
+    public long getAverageCookieSize() {
+        final long count = this.cookiesWritten.get();
+        return count == 0 ? 0 : this.totalCookieSize.get() / count;
+    }
+
+    public long getLargestCookieSize() {
+        return largestCookieSize.get();
+    }
+
+    public long getOverflows() {
+        return overflows.get();
+    }
+
+    public long getMalformedCookies() {
+        return malformedCookies.get();
+    }
+
+    public long getBadChecksumCookies() {
+        return badChecksumCookies.get();
+    }
+
+    public long getUnreadableCookies() {
+        return unreadableCookies.get();
+    }
+    
+    public long getRejectedCookies() {
+        return malformedCookies.get() + badChecksumCookies.get() + unreadableCookies.get();
+    }
+
+}
@@ -4,9 +4,10 @@ package com.ctlok.web.session.crypto;
  * @author Lawrence Cheung
  *
  */
-public class AesEncryptor implements Encryptor {
+public class AesEncryptor implements LengthAwareEncryptor {
 
     private static final String ALGORITHM = "AES";
+    private static final int BLOCK_SIZE = 16;
 
     @Override
     public String encrypt(String key, String data) throws Exception {
@@ -18,4 +19,10 @@ public class AesEncryptor implements Encryptor {
         return CryptoUtils.decrypt(ALGORITHM, key, data);
     }
 
+    @Override
+    public int encryptedLength(int dataLength) {
+        return CryptoUtils.base64Length(
+                CryptoUtils.paddedBlockLength(dataLength, BLOCK_SIZE));
+    }
+
 }
@@ -1,5 +1,6 @@
 package com.ctlok.web.session.crypto;
 
+import java.nio.charset.Charset;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
@@ -22,17 +23,18 @@ import org.apache.commons.codec.binary.Hex;
 public class CryptoUtils {
 
     private static final String HMAC_SHA1_ALGORITHM = "HmacSHA1";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
 
     public static String hmacSha1(final String key, final String data)
             throws InvalidKeyException {
         String result = null;
 
         try {
-            final Key secretKey = new SecretKeySpec(key.getBytes(),
+            final Key secretKey = new SecretKeySpec(key.getBytes(CHARSET),
                     HMAC_SHA1_ALGORITHM);
             final Mac mac = Mac.getInstance(HMAC_SHA1_ALGORITHM);
             mac.init(secretKey);
-            result = bytesToHex(mac.doFinal(data.getBytes()));
+            result = bytesToHex(mac.doFinal(data.getBytes(CHARSET)));
         } catch (final NoSuchAlgorithmException e) {
             throw new IllegalStateException(e);
         }
@@ -74,19 +76,27 @@ public class CryptoUtils {
         return Base64.decodeBase64(str);
     }
 
+    public static int base64Length(final int length){
+        return ((length + 2) / 3) * 4;
+    }
+
+    public static int paddedBlockLength(final int length, final int blockSize){
+        return (length / blockSize + 1) * blockSize;
+    }
+
     private static String encryptDecrypt(final String algorithm,
             boolean encrypt, final String key, final String data)
             throws NoSuchAlgorithmException, NoSuchPaddingException,
             IllegalBlockSizeException, BadPaddingException, InvalidKeyException, DecoderException{
 
         final int mode = encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE;
-        final Key secretKey = new SecretKeySpec(key.getBytes(), algorithm);
+        final Key secretKey = new SecretKeySpec(key.getBytes(CHARSET), algorithm);
         final Cipher cipher = Cipher.getInstance(algorithm);
         cipher.init(mode, secretKey);
         
         return encrypt ? 
-                encodeBase64(cipher.doFinal(data.getBytes())) :
-                    new String(cipher.doFinal(decodeBase64(data)));
+                encodeBase64(cipher.doFinal(data.getBytes(CHARSET))) :
+                    new String(cipher.doFinal(decodeBase64(data)), CHARSET);
 
     }
 
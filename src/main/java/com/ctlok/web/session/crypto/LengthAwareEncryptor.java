@@ -0,0 +1,11 @@
+package com.ctlok.web.session.crypto;
+
+/**
+ * An {@link Encryptor} that can tell the length of its output without 
+ * actually encrypting, so session size can be tracked cheaply.
+ */
+public interface LengthAwareEncryptor extends Encryptor {
+    
+    public int encryptedLength(int dataLength);
+
+}
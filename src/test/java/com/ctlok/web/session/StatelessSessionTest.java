@@ -0,0 +1,376 @@
+package com.ctlok.web.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+import com.ctlok.web.session.crypto.AesEncryptor;
+import com.ctlok.web.session.crypto.CryptoUtils;
+import com.ctlok.web.session.crypto.Encryptor;
+
+public class StatelessSessionTest {
+
+    private static final String HMAC_SHA1_KEY = "aDg3uE6t8X57bnFwcqRql8tvd";
+    private static final String SECRET_KEY = "0123456789abcdef";
+    private static final String SESSION_NAME = "SESSION";
+
+    private static final String[] VALUES = {
+        "plain ascii value",
+        "escaped <>&=' \" \\ \n\t\b\f\r \u0001 \u2028\u2029",
+        "two bytes \u00e9\u00fc",
+        "three bytes \u4e2d\u6587",
+        "four bytes \ud83d\ude00"
+    };
+
+    private final List<Cookie> requestCookies = new ArrayList<Cookie>();
+    private final List<Cookie> responseCookies = new ArrayList<Cookie>();
+    private final StatelessSessionMetrics metrics = new StatelessSessionMetrics();
+
+    @Test
+    public void missingCookieIsNotFound(){
+        final StatelessSession session = new StatelessSession(
+                createConfig(null, null, 4096, OverflowPolicy.EXCEPTION));
+
+        assertEquals(SessionCookieStatus.NOT_FOUND, session.getCookieStatus());
+        assertTrue(session.isNew());
+        assertEquals(0, this.responseCookies.size());
+        assertEquals(0, this.metrics.getRejectedCookies());
+    }
+
+    @Test
+    public void validCookieIsRestored(){
+        final StatelessSessionConfig config = createConfig(SECRET_KEY, new AesEncryptor(), 4096, OverflowPolicy.EXCEPTION);
+        final StatelessSession session = new StatelessSession(config);
+        session.setAttribute("user", "lawrence");
+
+        this.requestCookies.add(session.createCookie());
+        this.responseCookies.clear();
+        final StatelessSession restoredSession = new StatelessSession(config);
+
+        assertEquals(SessionCookieStatus.VALID, restoredSession.getCookieStatus());
+        assertEquals(0, this.responseCookies.size());
+        assertFalse(restoredSession.isNew());
+        assertEquals(session.getId(), restoredSession.getId());
+        assertEquals(session.getCreationTime(), restoredSession.getCreationTime());
+        assertEquals("lawrence", restoredSession.getAttribute("user"));
+    }
+
+    @Test
+    public void malformedCookieIsRejected(){
+        final StatelessSessionConfig config = createConfig(SECRET_KEY, new AesEncryptor(), 4096, OverflowPolicy.ALLOW);
+        final String value = new StatelessSession(config).createCookie().getValue();
+        final String checksum = value.substring(1, 41);
+
+        assertCookieStatus(config, SessionCookieStatus.MALFORMED, "");
+        assertCookieStatus(config, SessionCookieStatus.MALFORMED, "garbage");
+        assertCookieStatus(config, SessionCookieStatus.MALFORMED, value.substring(0, 41));
+        assertCookieStatus(config, SessionCookieStatus.MALFORMED, "2" + value.substring(1));
+        assertCookieStatus(config, SessionCookieStatus.MALFORMED, "1" + checksum.toUpperCase() + value.substring(41));
+        assertCookieStatus(config, SessionCookieStatus.MALFORMED, value + "%");
+        assertCookieStatus(config, SessionCookieStatus.MALFORMED, value + repeat('A', 4096));
+
+        final StatelessSessionConfig plainConfig = createConfig(null, null, 4096, OverflowPolicy.ALLOW);
+        assertCookieStatus(plainConfig, SessionCookieStatus.MALFORMED, "1" + checksum + "[]");
+
+        assertEquals(8, this.metrics.getMalformedCookies());
+    }
+
+    @Test
+    public void modifiedCookieIsRejected(){
+        final StatelessSessionConfig config = createConfig(null, null, 4096, OverflowPolicy.EXCEPTION);
+        final StatelessSession session = new StatelessSession(config);
+        session.setAttribute("role", "user");
+        final String value = session.createCookie().getValue();
+
+        assertCookieStatus(config, SessionCookieStatus.BAD_CHECKSUM, value.replace("\"user\"", "\"root\""));
+        assertCookieStatus(config, SessionCookieStatus.BAD_CHECKSUM,
+                "1" + repeat('0', 40) + value.substring(41));
+        assertEquals(2, this.metrics.getBadChecksumCookies());
+    }
+
+    @Test
+    public void unreadableCookieIsRejected() throws Exception{
+        final String value = new StatelessSession(
+                createConfig(SECRET_KEY, new AesEncryptor(), 4096, OverflowPolicy.EXCEPTION)).createCookie().getValue();
+
+        assertCookieStatus(createConfig("fedcba9876543210", new AesEncryptor(), 4096, OverflowPolicy.EXCEPTION),
+                SessionCookieStatus.UNREADABLE, value);
+
+        final String payload = "{\"user\":\"lawrence\"}";
+        assertCookieStatus(createConfig(null, null, 4096, OverflowPolicy.EXCEPTION),
+                SessionCookieStatus.UNREADABLE, "1" + CryptoUtils.hmacSha1(HMAC_SHA1_KEY, payload) + payload);
+
+        assertEquals(2, this.metrics.getUnreadableCookies());
+    }
+
+    @Test
+    public void estimatedSizeMatchesPlainCookie(){
+        assertEstimatedSizeMatches(createConfig(null, null, 4096, OverflowPolicy.ALLOW));
+    }
+
+    @Test
+    public void estimatedSizeMatchesEncryptedCookie(){
+        assertEstimatedSizeMatches(createConfig(SECRET_KEY, new AesEncryptor(), 4096, OverflowPolicy.ALLOW));
+    }
+
+    @Test
+    public void estimatedSizeIsUnknownForOtherEncryptors(){
+        final Encryptor encryptor = new Encryptor() {
+
+            private final Encryptor aesEncryptor = new AesEncryptor();
+
+            @Override
+            public String encrypt(String key, String data) throws Exception {
+                return aesEncryptor.encrypt(key, data);
+            }
+
+            @Override
+            public String decrypt(String key, String data) throws Exception {
+                return aesEncryptor.decrypt(key, data);
+            }
+        };
+
+        final StatelessSession session = new StatelessSession(
+                createConfig(SECRET_KEY, encryptor, 4096, OverflowPolicy.EXCEPTION));
+
+        assertEquals(-1, session.getEstimatedCookieSize());
+    }
+
+    @Test
+    public void overflowWithExceptionPolicyKeepsSessionUnchanged(){
+        final StatelessSession session = new StatelessSession(
+                createConfig(null, null, 300, OverflowPolicy.EXCEPTION));
+        session.setAttribute("small", "value");
+
+        try{
+            session.setAttribute("large", repeat('x', 300));
+            fail("Expected IllegalStateException");
+        }catch (final IllegalStateException e){
+            // expected
+        }
+
+        assertNull(session.getAttribute("large"));
+        assertEquals("value", session.getAttribute("small"));
+        assertEquals(1, this.responseCookies.size());
+        assertEquals(1, this.metrics.getOverflows());
+    }
+
+    @Test
+    public void overflowWithIgnorePolicyDropsAttribute(){
+        final StatelessSession session = new StatelessSession(
+                createConfig(null, null, 300, OverflowPolicy.IGNORE));
+        session.setAttribute("large", repeat('x', 300));
+
+        assertNull(session.getAttribute("large"));
+        assertEquals(0, this.responseCookies.size());
+        assertEquals(1, this.metrics.getOverflows());
+    }
+
+    @Test
+    public void overflowOfUnknownEncryptorIsCheckedOnWrite(){
+        final StatelessSession session = new StatelessSession(
+                createConfig(SECRET_KEY, new PrefixEncryptor(repeat('0', 200)), 400, OverflowPolicy.EXCEPTION));
+        session.setAttribute("small", "value");
+
+        try{
+            session.setAttribute("large", repeat('x', 100));
+            fail("Expected IllegalStateException");
+        }catch (final IllegalStateException e){
+            // expected
+        }
+
+        assertNull(session.getAttribute("large"));
+        assertEquals(1, this.responseCookies.size());
+        assertEquals(1, this.metrics.getOverflows());
+    }
+
+    @Test
+    public void overflowWithIgnorePolicyIsRolledBackOnWrite(){
+        final StatelessSession session = new StatelessSession(
+                createConfig(SECRET_KEY, new PrefixEncryptor(repeat('0', 200)), 400, OverflowPolicy.IGNORE));
+        session.setAttribute("small", "value");
+        session.setAttribute("large", repeat('x', 100));
+        session.setAttribute("small", repeat('x', 100));
+
+        assertNull(session.getAttribute("large"));
+        assertEquals("value", session.getAttribute("small"));
+        assertEquals(1, this.responseCookies.size());
+        assertEquals(2, this.metrics.getOverflows());
+    }
+
+    @Test
+    public void oversizedSessionCanShrinkWithIgnorePolicy(){
+        assertOversizedSessionCanShrink(OverflowPolicy.IGNORE);
+    }
+
+    @Test
+    public void oversizedSessionCanShrinkWithExceptionPolicy(){
+        assertOversizedSessionCanShrink(OverflowPolicy.EXCEPTION);
+    }
+
+    @Test
+    public void legacyConfigsShareMetrics(){
+        final StatelessSessionConfig config = new StatelessSessionConfig(null, null, null,
+                HMAC_SHA1_KEY, null, null, SESSION_NAME, -1, "/", null, true);
+        final StatelessSessionConfig otherConfig = new StatelessSessionConfig(null, null, null,
+                HMAC_SHA1_KEY, null, null, SESSION_NAME, -1, "/", null, true);
+
+        assertSame(config.getMetrics(), otherConfig.getMetrics());
+    }
+
+    private void assertOversizedSessionCanShrink(final OverflowPolicy overflowPolicy){
+        final StatelessSession session = new StatelessSession(
+                createConfig(null, null, 4096, OverflowPolicy.ALLOW));
+        session.setAttribute("user", "lawrence");
+        session.setAttribute("large", repeat('x', 1000));
+        session.setAttribute("other", repeat('x', 100));
+        this.requestCookies.add(session.createCookie());
+        this.responseCookies.clear();
+
+        final StatelessSession restoredSession = new StatelessSession(
+                createConfig(null, null, 500, overflowPolicy));
+        assertEquals(SessionCookieStatus.VALID, restoredSession.getCookieStatus());
+
+        restoredSession.removeAttribute("user");
+        restoredSession.setAttribute("large", "small");
+        restoredSession.setAttribute("other", repeat('y', 100));
+
+        assertNull(restoredSession.getAttribute("user"));
+        assertEquals("small", restoredSession.getAttribute("large"));
+        assertEquals(repeat('y', 100), restoredSession.getAttribute("other"));
+        assertEquals(3, this.responseCookies.size());
+        assertEquals(0, this.metrics.getOverflows());
+    }
+
+    private void assertCookieStatus(final StatelessSessionConfig config,
+            final SessionCookieStatus status, final String value){
+
+        this.requestCookies.clear();
+        this.requestCookies.add(new Cookie(SESSION_NAME, value));
+        this.responseCookies.clear();
+        final StatelessSession session = new StatelessSession(config);
+
+        assertEquals(value, status, session.getCookieStatus());
+        assertTrue(session.isNew());
+        assertNull(session.getAttribute("user"));
+
+        assertEquals(1, this.responseCookies.size());
+        final Cookie expiredCookie = this.responseCookies.get(0);
+        assertEquals(SESSION_NAME, expiredCookie.getName());
+        assertEquals("/", expiredCookie.getPath());
+        assertEquals(0, expiredCookie.getMaxAge());
+    }
+
+    private void assertEstimatedSizeMatches(final StatelessSessionConfig config){
+        final StatelessSession session = new StatelessSession(config);
+        assertEquals(cookieSize(session.createCookie()), session.getEstimatedCookieSize());
+
+        for (int i = 0; i < VALUES.length; i++){
+            session.setAttribute("key" + i, VALUES[i]);
+            assertEquals(VALUES[i], cookieSize(session.createCookie()), session.getEstimatedCookieSize());
+
+            session.setAttribute(VALUES[i], "key");
+            assertEquals(VALUES[i], cookieSize(session.createCookie()), session.getEstimatedCookieSize());
+        }
+
+        session.setAttribute("key0", VALUES[1]);
+        session.removeAttribute("key1");
+        session.removeAttribute("missing");
+        assertEquals(cookieSize(session.createCookie()), session.getEstimatedCookieSize());
+
+        this.requestCookies.add(session.createCookie());
+        final StatelessSession restoredSession = new StatelessSession(config);
+
+        assertEquals(session.getId(), restoredSession.getId());
+        assertEquals(session.getEstimatedCookieSize(), restoredSession.getEstimatedCookieSize());
+    }
+
+    private StatelessSessionConfig createConfig(final String secretKey,
+            final Encryptor encryptor, final int maxSize, final OverflowPolicy overflowPolicy){
+
+        final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{ HttpServletRequest.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("getCookies".equals(method.getName()) && !requestCookies.isEmpty()){
+                            return requestCookies.toArray(new Cookie[0]);
+                        }
+                        return null;
+                    }
+                });
+
+        final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+                getClass().getClassLoader(), new Class<?>[]{ HttpServletResponse.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("addCookie".equals(method.getName())){
+                            responseCookies.add((Cookie) args[0]);
+                        }
+                        return null;
+                    }
+                });
+
+        return new StatelessSessionConfig(null, request, response, HMAC_SHA1_KEY,
+                secretKey, encryptor, SESSION_NAME, -1, "/", null, true,
+                maxSize, overflowPolicy, this.metrics);
+    }
+
+    /**
+     * Encryptor with output longer than the estimate can know, 
+     * like one that prepends an IV.
+     */
+    private static class PrefixEncryptor implements Encryptor {
+
+        private final Encryptor aesEncryptor = new AesEncryptor();
+        private final String prefix;
+
+        PrefixEncryptor(final String prefix){
+            this.prefix = prefix;
+        }
+
+        @Override
+        public String encrypt(String key, String data) throws Exception {
+            return prefix + aesEncryptor.encrypt(key, data);
+        }
+
+        @Override
+        public String decrypt(String key, String data) throws Exception {
+            return aesEncryptor.decrypt(key, data.substring(prefix.length()));
+        }
+
+    }
+
+    private static int cookieSize(final Cookie cookie){
+        return cookie.getName().length() + 1
+                + cookie.getValue().getBytes(Charset.forName("UTF-8")).length;
+    }
+
+    private static String repeat(final char c, final int count){
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++){
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+}